@@ -0,0 +1,231 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A simple circuit breaker guarding calls to a Couchbase bucket. The outcome
+ * of the most recent calls is kept in a sliding window, and the circuit opens
+ * when the share of calls in the window that either failed or were slower than
+ * the configured threshold reaches the failure rate threshold. While open,
+ * callers are expected to not call Couchbase at all. After the retry interval
+ * a single probe call is let through, and depending on its outcome the circuit
+ * is either closed again or kept open.
+ *
+ * @author Fredrik Jönsson "fjo@kth.se"
+ * @since 4.1
+ */
+final class CouchbaseCircuitBreaker {
+    /** The states of the circuit. */
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int PERCENT = 100;
+
+    private final Logger logger = LoggerFactory.getLogger(CouchbaseCircuitBreaker.class);
+
+    /* Percentage of failed or slow calls in the window that opens the circuit. */
+    private int failureRateThreshold = 50;
+
+    /* Minimum number of calls in the window before the circuit may open. */
+    private int minimumCalls = 10;
+
+    /* Calls taking longer than this, in milliseconds, count as failures. */
+    private long slowCallThreshold = 500;
+
+    /* Time, in seconds, to wait before letting a probe through an open circuit. */
+    private long retryInterval = 10;
+
+    /* Outcomes of the most recent calls, true for failed or slow calls. */
+    private boolean[] window = new boolean[20];
+    private int calls;
+    private int failures;
+    private int next;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+
+
+    /**
+     * Check whether a call to Couchbase should be made. When the circuit is
+     * open and the retry interval has passed, this will let exactly one
+     * caller through as a probe.
+     *
+     * @return true if the caller may call Couchbase.
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() - openedAt >= TimeUnit.SECONDS.toMillis(retryInterval)) {
+                logger.info("Letting probe through open Couchbase circuit.");
+                state = State.HALF_OPEN;
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+
+    /**
+     * Record the outcome of a successful call. A successful probe closes the
+     * circuit, while successes of calls made before the circuit opened are
+     * ignored.
+     *
+     * @param elapsed the time the call took in milliseconds.
+     */
+    synchronized void onSuccess(final long elapsed) {
+        if (elapsed > slowCallThreshold) {
+            logger.debug("Slow Couchbase call, {} ms.", elapsed);
+            onFailure();
+            return;
+        }
+        switch (state) {
+        case CLOSED:
+            record(false);
+            break;
+        case HALF_OPEN:
+            logger.info("Couchbase responding again, closing circuit.");
+            reset();
+            state = State.CLOSED;
+            break;
+        default:
+            break;
+        }
+    }
+
+
+    /**
+     * Record the outcome of a failed call. A failed probe opens the circuit
+     * again, while failures of calls made before the circuit opened are
+     * ignored.
+     */
+    synchronized void onFailure() {
+        switch (state) {
+        case CLOSED:
+            record(true);
+            if (calls >= minimumCalls && failures * PERCENT >= failureRateThreshold * calls) {
+                open();
+            }
+            break;
+        case HALF_OPEN:
+            open();
+            break;
+        default:
+            break;
+        }
+    }
+
+
+    /**
+     * Open the circuit, starting the retry interval.
+     */
+    private void open() {
+        logger.warn("Couchbase slow or unreachable, opening circuit for {} seconds.", retryInterval);
+        reset();
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Add an outcome to the window, replacing the oldest one if it is full.
+     *
+     * @param failed true if the call failed or was slow.
+     */
+    private void record(final boolean failed) {
+        if (calls == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+
+    /**
+     * Forget all recorded outcomes.
+     */
+    private void reset() {
+        calls = 0;
+        failures = 0;
+        next = 0;
+    }
+
+
+    /**
+     * @return the current state of the circuit.
+     */
+    synchronized State state() {
+        return state;
+    }
+
+
+    /**
+     * @param failureRateThreshold percentage of failed or slow calls in the window that opens the circuit.
+     */
+    synchronized void setFailureRateThreshold(final int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+
+    /**
+     * @param minimumCalls minimum number of calls in the window before the circuit may open.
+     */
+    synchronized void setMinimumCalls(final int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+
+    /**
+     * @param windowSize number of recent calls to consider.
+     */
+    synchronized void setWindowSize(final int windowSize) {
+        this.window = new boolean[windowSize];
+        reset();
+    }
+
+
+    /**
+     * @param slowCallThreshold time in milliseconds after which a call is considered failed.
+     */
+    synchronized void setSlowCallThreshold(final long slowCallThreshold) {
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+
+    /**
+     * @param retryInterval time in seconds before probing an open circuit.
+     */
+    synchronized void setRetryInterval(final long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+}
@@ -20,10 +20,15 @@ package se.kth.infosys.login.couchbase;
 
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +43,9 @@ import org.jasig.cas.util.services.RegisteredServiceJsonSerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import rx.Observable;
+import rx.functions.Func1;
+
 import com.couchbase.client.java.Bucket;
 import com.couchbase.client.java.document.RawJsonDocument;
 import com.couchbase.client.java.view.DefaultView;
@@ -57,8 +65,9 @@ import com.couchbase.client.java.view.ViewRow;
  * @since 4.1
  */
 public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements ServiceRegistryDao {
-    private static final Timer TIMER = new Timer();
     private static final long RETRY_INTERVAL = 10;
+    private static final int BULK_CONCURRENCY = 16;
+    private static final long BULK_TIMEOUT_SECONDS = 10;
 
     /*
      * Views, or indexes, in the database.
@@ -72,6 +81,7 @@ public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements
     private static final String UTIL_DOCUMENT = "utils";
 
     private final Logger logger = LoggerFactory.getLogger(CouchbaseServiceRegistryDaoImpl.class);
+    private final Timer timer = new Timer();
 
     /* Couchbase client factory */
     @NotNull
@@ -112,15 +122,101 @@ public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements
             ((AbstractRegisteredService) service).setId(id);
         }
         logger.debug("Saving service {}", service);
+        couchbase.bucket().upsert(toDocument(service));
+        return service;
+    }
+
+
+    /**
+     * Save a number of services in bulk. Ids for services without one are
+     * reserved with a single counter increment, and the services are then
+     * stored concurrently. Since ids are set on the services before they are
+     * stored, calling this again with the same services after a partial
+     * failure stores the remaining services under the same ids.
+     * 
+     * @param services the services to save.
+     * @return the services that were successfully saved.
+     */
+    public List<RegisteredService> saveAll(final List<RegisteredService> services) {
+        allocateIds(services);
+
+        final List<RawJsonDocument> documents = new ArrayList<RawJsonDocument>(services.size());
+        for (final RegisteredService service : services) {
+            documents.add(toDocument(service));
+        }
+        logger.debug("Saving {} services", documents.size());
+
+        final Bucket bucket = couchbase.bucket();
+        final List<Integer> saved = Observable.merge(
+                Observable.range(0, documents.size()).map(new Func1<Integer, Observable<Integer>>() {
+                    @Override
+                    public Observable<Integer> call(final Integer index) {
+                        final RawJsonDocument document = documents.get(index);
+                        return bucket.async().upsert(document)
+                                .timeout(BULK_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                                .map(new Func1<RawJsonDocument, Integer>() {
+                                    @Override
+                                    public Integer call(final RawJsonDocument result) {
+                                        return index;
+                                    }
+                                })
+                                .onErrorResumeNext(new Func1<Throwable, Observable<Integer>>() {
+                                    @Override
+                                    public Observable<Integer> call(final Throwable e) {
+                                        logger.warn("Unable to save service {}: {}", document.id(), e);
+                                        return Observable.empty();
+                                    }
+                                });
+                    }
+                }), BULK_CONCURRENCY)
+                .toList()
+                .toBlocking()
+                .single();
+
+        Collections.sort(saved);
+        final List<RegisteredService> result = new ArrayList<RegisteredService>(saved.size());
+        for (final Integer index : saved) {
+            result.add(services.get(index));
+        }
+        return result;
+    }
+
+
+    /**
+     * Set ids on the services that have none, reserving a block of ids
+     * from the counter in couchbase with a single increment.
+     * 
+     * @param services the services to set ids on.
+     */
+    private void allocateIds(final List<RegisteredService> services) {
+        final List<AbstractRegisteredService> unset = new ArrayList<AbstractRegisteredService>();
+        for (final RegisteredService service : services) {
+            if (service.getId() == RegisteredService.INITIAL_IDENTIFIER_VALUE
+                    && service instanceof AbstractRegisteredService) {
+                unset.add((AbstractRegisteredService) service);
+            }
+        }
+        if (unset.isEmpty()) {
+            return;
+        }
+        logger.debug("Reserving {} service ids from counter in couchbase.", unset.size());
+        final long last = couchbase.bucket().counter(
+                "LAST_ID", unset.size(), initialId + unset.size() - 1).content().longValue();
+        long id = last - unset.size() + 1;
+        for (final AbstractRegisteredService service : unset) {
+            service.setId(id++);
+        }
+    }
+
 
+    /**
+     * @param service the service to serialize.
+     * @return a JSON document for the service.
+     */
+    private RawJsonDocument toDocument(final RegisteredService service) {
         final StringWriter stringWriter = new StringWriter();
         registeredServiceJsonSerializer.toJson(stringWriter, service);
-
-        couchbase.bucket().upsert(
-                RawJsonDocument.create(
-                        String.valueOf(service.getId()), 
-                        0, stringWriter.toString()));
-        return service;
+        return RawJsonDocument.create(String.valueOf(service.getId()), 0, stringWriter.toString());
     }
 
 
@@ -186,7 +282,7 @@ public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements
     public void setRegisteredServices(final List<RegisteredService> services) {
         this.registeredServices.addAll(services);
         this.initialId = services.size();
-        TIMER.scheduleAtFixedRate(this, new Date(), TimeUnit.SECONDS.toMillis(RETRY_INTERVAL));
+        timer.scheduleAtFixedRate(this, new Date(), TimeUnit.SECONDS.toMillis(RETRY_INTERVAL));
     }
 
 
@@ -204,8 +300,8 @@ public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements
      * @throws Exception on errors.
      */
     public void destroy() throws Exception {
-        TIMER.cancel();
-        TIMER.purge();
+        timer.cancel();
+        timer.purge();
         couchbase.shutdown();
     }
 
@@ -216,11 +312,21 @@ public final class CouchbaseServiceRegistryDaoImpl extends TimerTask implements
     @Override
     public void run() {
         try {
-            for (final RegisteredService service : registeredServices) {
-                save(service);
+            final Set<RegisteredService> saved =
+                    Collections.newSetFromMap(new IdentityHashMap<RegisteredService, Boolean>());
+            saved.addAll(saveAll(registeredServices));
+            final Iterator<RegisteredService> iterator = registeredServices.iterator();
+            while (iterator.hasNext()) {
+                if (saved.contains(iterator.next())) {
+                    iterator.remove();
+                }
+            }
+            if (registeredServices.isEmpty()) {
+                timer.cancel();
+                logger.debug("Stored pre configured services from XML in registry.");
+            } else {
+                logger.error("Unable to save {} pre configured services, retrying...", registeredServices.size());
             }
-            TIMER.cancel();
-            logger.debug("Stored pre configured services from XML in registry.");
         } catch (final RuntimeException e) {
             logger.error("Unable to save pre configured services: {}, retrying...", e);
         }
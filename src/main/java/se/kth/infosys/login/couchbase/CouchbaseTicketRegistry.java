@@ -22,6 +22,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
@@ -34,7 +38,13 @@ import org.jasig.cas.ticket.TicketGrantingTicket;
 import org.jasig.cas.ticket.TicketGrantingTicketImpl;
 import org.jasig.cas.ticket.registry.AbstractDistributedTicketRegistry;
 
+import rx.Observable;
+import rx.functions.Func1;
+
+import com.couchbase.client.java.AsyncBucket;
 import com.couchbase.client.java.document.SerializableDocument;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
 import com.couchbase.client.java.view.DefaultView;
 import com.couchbase.client.java.view.View;
 import com.couchbase.client.java.view.ViewQuery;
@@ -47,6 +57,11 @@ import com.couchbase.client.java.view.ViewRow;
  * CouchBase is a multi host NoSQL database with a memcached interface
  * to persistent storage which also is quite usable as a replicated
  * tickage storage engine for multiple front end CAS servers.
+ * <p>
+ * Calls to Couchbase are guarded by a circuit breaker. When Couchbase is
+ * slow or unreachable the circuit opens and tickets are written to, and
+ * read from, a bounded local buffer instead. When Couchbase responds again
+ * the buffered writes are replayed to it in batches.
  * 
  * @author Fredrik Jönsson "fjo@kth.se"
  * @since 4.0
@@ -64,6 +79,12 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
             ALL_TICKETS_VIEW
     });
     private static final String UTIL_DOCUMENT = "statistics";
+    private static final int DEFAULT_BUFFER_SIZE = 10000;
+
+    private final Timer timer = new Timer(true);
+    private final CouchbaseCircuitBreaker circuitBreaker = new CouchbaseCircuitBreaker();
+    private final AtomicBoolean replaying = new AtomicBoolean(false);
+    private LocalTicketBuffer buffer;
 
     /* Couchbase client factory */
     @NotNull
@@ -75,6 +96,21 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
     @Min(0)
     private int stTimeout;
 
+    /* Timeout in milliseconds for single calls to Couchbase. */
+    @Min(1)
+    private long operationTimeout = 2500;
+
+    /* Number of buffered writes to replay to Couchbase at a time. */
+    @Min(1)
+    private int replayBatchSize = 100;
+
+    /* Maximum number of ticket writes and removals respectively to buffer locally. */
+    @Min(0)
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    @Min(0)
+    private int removalBufferSize = DEFAULT_BUFFER_SIZE;
+
     /**
      * Default constructor.
      */
@@ -87,13 +123,7 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
     @Override
     protected void updateTicket(final Ticket ticket) {
         logger.debug("Updating ticket {}", ticket);
-        try {
-            final SerializableDocument document = 
-                    SerializableDocument.create(ticket.getId(), getTimeout(ticket), ticket);
-            couchbase.bucket().upsert(document);
-        } catch (final Exception e) {
-            logger.error("Failed updating {}: {}", ticket, e);
-        }
+        storeTicket(ticket, LocalTicketBuffer.Kind.UPDATE);
     }
 
 
@@ -103,12 +133,58 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
     @Override
     public void addTicket(final Ticket ticket) {
         logger.debug("Adding ticket {}", ticket);
+        storeTicket(ticket, LocalTicketBuffer.Kind.ADD);
+    }
+
+
+    /**
+     * Store the ticket in Couchbase, or in the local buffer if the circuit
+     * to Couchbase is open or the call fails.
+     * 
+     * @param ticket the ticket to store.
+     * @param kind whether the ticket is added or updated.
+     * @throws IllegalStateException if the ticket could neither be stored in
+     *         Couchbase nor in the local buffer.
+     */
+    private void storeTicket(final Ticket ticket, final LocalTicketBuffer.Kind kind) {
+        final int timeout;
+        try {
+            timeout = getTimeout(ticket);
+        } catch (final IllegalArgumentException e) {
+            logger.error("Failed storing {}: {}", ticket, e);
+            return;
+        }
+        if (buffer.contains(ticket.getId()) || !circuitBreaker.allowRequest()) {
+            logger.debug("Buffering ticket {} locally.", ticket);
+            bufferTicket(ticket, kind, timeout);
+            return;
+        }
+        final long start = System.currentTimeMillis();
         try {
-            final SerializableDocument document = 
-                    SerializableDocument.create(ticket.getId(), getTimeout(ticket), ticket);
-            couchbase.bucket().upsert(document);
+            final SerializableDocument document = SerializableDocument.create(ticket.getId(), timeout, ticket);
+            couchbase.bucket().upsert(document, operationTimeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
-            logger.error("Failed adding {}: {}", ticket, e);
+            circuitBreaker.onFailure();
+            logger.error("Failed storing {}, buffering locally: {}", ticket, e);
+            bufferTicket(ticket, kind, timeout);
+            return;
+        }
+        onSuccess(start);
+    }
+
+
+    /**
+     * Store the ticket in the local buffer.
+     * 
+     * @param ticket the ticket to store.
+     * @param kind whether the ticket is added or updated.
+     * @param timeout the ticket timeout in seconds.
+     * @throws IllegalStateException if the local buffer is full.
+     */
+    private void bufferTicket(final Ticket ticket, final LocalTicketBuffer.Kind kind, final int timeout) {
+        if (!buffer.put(ticket, kind, timeout)) {
+            logger.error("Local ticket buffer full, unable to store {}.", ticket);
+            throw new IllegalStateException("Unable to store ticket " + ticket.getId() + ", ticket registry unavailable.");
         }
     }
 
@@ -119,13 +195,41 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
     @Override
     public boolean deleteTicket(final String ticketId) {
         logger.debug("Deleting ticket {}", ticketId);
+        if (buffer.contains(ticketId) || !circuitBreaker.allowRequest()) {
+            logger.debug("Buffering removal of ticket {} locally.", ticketId);
+            return bufferRemoval(ticketId);
+        }
+        final long start = System.currentTimeMillis();
+        boolean found = true;
         try {
-            couchbase.bucket().remove(ticketId);
-            return true;
+            couchbase.bucket().remove(ticketId, operationTimeout, TimeUnit.MILLISECONDS);
+        } catch (final DocumentDoesNotExistException e) {
+            logger.debug("Ticket {} not found in registry.", ticketId);
+            found = false;
         } catch (final Exception e) {
-            logger.error("Failed deleting {}: {}", ticketId, e);
+            circuitBreaker.onFailure();
+            logger.error("Failed deleting {}, buffering removal locally: {}", ticketId, e);
+            return bufferRemoval(ticketId);
+        }
+        onSuccess(start);
+        return found;
+    }
+
+
+    /**
+     * Store a removal of the ticket in the local buffer, remembered for as
+     * long as the ticket could live in Couchbase.
+     * 
+     * @param ticketId the ticket id.
+     * @return false if the local buffer is full.
+     */
+    private boolean bufferRemoval(final String ticketId) {
+        final int timeout = ticketId.startsWith(ServiceTicketImpl.PREFIX) ? stTimeout : tgtTimeout;
+        if (!buffer.remove(ticketId, timeout)) {
+            logger.error("Local ticket buffer full, unable to delete {}.", ticketId);
             return false;
         }
+        return true;
     }
 
 
@@ -134,19 +238,162 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
      */
     @Override
     public Ticket getTicket(final String ticketId) {
-        try {
-            final SerializableDocument document = couchbase.bucket().get(ticketId, SerializableDocument.class);
-            if (document != null) {
-                final Ticket t = (Ticket) document.content();
-                logger.debug("Got ticket {} from registry.", t);
-                return getProxiedTicketInstance(t);
-            }
-            logger.debug("Ticket {} not found in registry.", ticketId);
+        final LocalTicketBuffer.Entry entry = buffer.get(ticketId);
+        if (entry != null) {
+            logger.debug("Got ticket {} from local buffer.", ticketId);
+            return entry.isRemoval() ? null : getProxiedTicketInstance(entry.ticket());
+        }
+        if (!circuitBreaker.allowRequest()) {
+            logger.debug("Circuit to Couchbase open, ticket {} not available.", ticketId);
             return null;
+        }
+        final long start = System.currentTimeMillis();
+        final SerializableDocument document;
+        try {
+            document = couchbase.bucket().get(
+                    ticketId, SerializableDocument.class, operationTimeout, TimeUnit.MILLISECONDS);
         } catch (final Exception e) {
+            circuitBreaker.onFailure();
             logger.error("Failed fetching {}: {}", ticketId, e);
             return null;
         }
+        onSuccess(start);
+        if (document != null) {
+            final Ticket t = (Ticket) document.content();
+            logger.debug("Got ticket {} from registry.", t);
+            return getProxiedTicketInstance(t);
+        }
+        logger.debug("Ticket {} not found in registry.", ticketId);
+        return null;
+    }
+
+
+    /**
+     * Record a successful call to Couchbase, scheduling a replay of the
+     * local buffer if there are buffered writes and no replay is running.
+     * No replay is scheduled once the registry has been destroyed.
+     * 
+     * @param start the time the call started, in milliseconds.
+     */
+    private void onSuccess(final long start) {
+        circuitBreaker.onSuccess(System.currentTimeMillis() - start);
+        if (circuitBreaker.state() != CouchbaseCircuitBreaker.State.CLOSED
+                || buffer.isEmpty() || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        replayBuffer();
+                    } catch (final Exception e) {
+                        logger.error("Failed replaying buffered tickets to Couchbase: {}", e);
+                    } finally {
+                        replaying.set(false);
+                    }
+                }
+            }, 0);
+        } catch (final IllegalStateException e) {
+            logger.debug("Registry destroyed, not replaying buffered tickets.");
+            replaying.set(false);
+        }
+    }
+
+
+    /**
+     * Replay buffered writes to Couchbase in batches until the buffer is
+     * empty, a batch is not completely written, or the circuit opens again.
+     * Writes that fail remain in the buffer for the next replay.
+     */
+    private void replayBuffer() {
+        final AsyncBucket bucket = couchbase.bucket().async();
+        List<LocalTicketBuffer.Entry> batch = buffer.oldest(replayBatchSize);
+        while (!batch.isEmpty() && circuitBreaker.state() == CouchbaseCircuitBreaker.State.CLOSED) {
+            logger.debug("Replaying {} buffered tickets to Couchbase.", batch.size());
+            final List<LocalTicketBuffer.Entry> replayed = Observable.from(batch)
+                    .flatMap(new Func1<LocalTicketBuffer.Entry, Observable<LocalTicketBuffer.Entry>>() {
+                        @Override
+                        public Observable<LocalTicketBuffer.Entry> call(final LocalTicketBuffer.Entry entry) {
+                            return replay(bucket, entry);
+                        }
+                    })
+                    .toList()
+                    .toBlocking()
+                    .single();
+            for (final LocalTicketBuffer.Entry entry : replayed) {
+                buffer.discard(entry);
+            }
+            if (replayed.size() < batch.size()) {
+                circuitBreaker.onFailure();
+                logger.warn("Replayed {} of {} buffered tickets to Couchbase.", replayed.size(), batch.size());
+                return;
+            }
+            batch = buffer.oldest(replayBatchSize);
+        }
+    }
+
+
+    /**
+     * Replay a buffered write. Added tickets are inserted and updated tickets
+     * replaced, so that a ticket removed from Couchbase by another server in
+     * the meantime is not brought back. Writes made obsolete that way count
+     * as replayed.
+     * 
+     * @param bucket the bucket to write to.
+     * @param entry a buffered write.
+     * @return an observable emitting the entry if it was written, or nothing if it failed.
+     */
+    private Observable<LocalTicketBuffer.Entry> replay(final AsyncBucket bucket, final LocalTicketBuffer.Entry entry) {
+        final Observable<?> write;
+        switch (entry.kind()) {
+        case ADD:
+            write = bucket.insert(document(entry))
+                    .onErrorResumeNext(new Func1<Throwable, Observable<SerializableDocument>>() {
+                        @Override
+                        public Observable<SerializableDocument> call(final Throwable e) {
+                            if (e instanceof DocumentAlreadyExistsException) {
+                                return bucket.replace(document(entry));
+                            }
+                            return Observable.error(e);
+                        }
+                    });
+            break;
+        case UPDATE:
+            write = bucket.replace(document(entry));
+            break;
+        default:
+            write = bucket.remove(entry.id());
+            break;
+        }
+        return write
+                .timeout(operationTimeout, TimeUnit.MILLISECONDS)
+                .map(new Func1<Object, LocalTicketBuffer.Entry>() {
+                    @Override
+                    public LocalTicketBuffer.Entry call(final Object result) {
+                        return entry;
+                    }
+                })
+                .onErrorResumeNext(new Func1<Throwable, Observable<LocalTicketBuffer.Entry>>() {
+                    @Override
+                    public Observable<LocalTicketBuffer.Entry> call(final Throwable e) {
+                        if (e instanceof DocumentDoesNotExistException) {
+                            logger.debug("Ticket {} no longer in registry, dropping buffered write.", entry.id());
+                            return Observable.just(entry);
+                        }
+                        logger.warn("Failed replaying {}: {}", entry.id(), e);
+                        return Observable.empty();
+                    }
+                });
+    }
+
+
+    /**
+     * @param entry a buffered ticket write.
+     * @return a document for the ticket with its remaining timeout.
+     */
+    private static SerializableDocument document(final LocalTicketBuffer.Entry entry) {
+        return SerializableDocument.create(entry.id(), entry.remainingTimeout(), entry.ticket());
     }
 
 
@@ -154,6 +401,7 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
      * Starts the couchbase client.
      */
     public void initialize() {
+        buffer = new LocalTicketBuffer(bufferSize, removalBufferSize);
         couchbase.ensureIndexes(UTIL_DOCUMENT, ALL_VIEWS);
         couchbase.initialize();
     }
@@ -164,6 +412,7 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
      * @throws Exception on errors.
      */
     public void destroy() throws Exception {
+        timer.cancel();
         couchbase.shutdown();
     }
 
@@ -247,6 +496,104 @@ public final class CouchbaseTicketRegistry extends AbstractDistributedTicketRegi
     }
 
 
+    /**
+     * Sets the timeout for single calls to Couchbase.
+     * 
+     * @param operationTimeout timeout in milliseconds.
+     */
+    public void setOperationTimeout(final long operationTimeout) {
+        this.operationTimeout = operationTimeout;
+    }
+
+
+    /**
+     * Sets the percentage of failed or slow calls to Couchbase among the
+     * most recent calls at which the circuit opens and tickets are buffered
+     * locally.
+     * 
+     * @param failureRateThreshold percentage of calls.
+     */
+    public void setFailureRateThreshold(final int failureRateThreshold) {
+        circuitBreaker.setFailureRateThreshold(failureRateThreshold);
+    }
+
+
+    /**
+     * Sets the number of most recent calls to Couchbase to consider when
+     * deciding whether to open the circuit.
+     * 
+     * @param windowSize number of calls.
+     */
+    public void setWindowSize(final int windowSize) {
+        circuitBreaker.setWindowSize(windowSize);
+    }
+
+
+    /**
+     * Sets the minimum number of recent calls to Couchbase required
+     * before the circuit may open.
+     * 
+     * @param minimumCalls number of calls.
+     */
+    public void setMinimumCalls(final int minimumCalls) {
+        circuitBreaker.setMinimumCalls(minimumCalls);
+    }
+
+
+    /**
+     * Sets the time after which a call to Couchbase is considered slow,
+     * counting towards opening the circuit.
+     * 
+     * @param slowCallThreshold time in milliseconds.
+     */
+    public void setSlowCallThreshold(final long slowCallThreshold) {
+        circuitBreaker.setSlowCallThreshold(slowCallThreshold);
+    }
+
+
+    /**
+     * Sets the time to wait before trying Couchbase again after the
+     * circuit has opened.
+     * 
+     * @param retryInterval time in seconds.
+     */
+    public void setRetryInterval(final long retryInterval) {
+        circuitBreaker.setRetryInterval(retryInterval);
+    }
+
+
+    /**
+     * Sets the maximum number of tickets to buffer locally while Couchbase
+     * is unavailable.
+     * 
+     * @param bufferSize number of tickets.
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+
+    /**
+     * Sets the maximum number of ticket removals to buffer locally while
+     * Couchbase is unavailable.
+     * 
+     * @param removalBufferSize number of removals.
+     */
+    public void setRemovalBufferSize(final int removalBufferSize) {
+        this.removalBufferSize = removalBufferSize;
+    }
+
+
+    /**
+     * Sets the number of buffered tickets to replay to Couchbase at a time.
+     * 
+     * @param replayBatchSize number of tickets.
+     */
+    public void setReplayBatchSize(final int replayBatchSize) {
+        this.replayBatchSize = replayBatchSize;
+    }
+
+
     /**
      * @param t a CAS ticket.
      * @return the ticket timeout for the ticket in the registry.
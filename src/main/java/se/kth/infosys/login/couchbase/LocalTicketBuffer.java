@@ -0,0 +1,284 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.cas.ticket.Ticket;
+
+/**
+ * A bounded local store for ticket writes that could not be made to Couchbase
+ * while the circuit to it is open. Each entry carries the time it expires, after
+ * which it is neither served nor replayed. Deletes are recorded as entries
+ * without a ticket so that they can be replayed as removals. Ticket writes and
+ * removals are bounded separately, and when there is no room for an entry
+ * after dropping expired ones the entry is rejected rather than dropping
+ * another, since losing a removal would leave a ticket valid in Couchbase
+ * after it has been destroyed.
+ *
+ * @author Fredrik Jönsson "fjo@kth.se"
+ * @since 4.1
+ */
+final class LocalTicketBuffer {
+    /** The kinds of buffered writes. */
+    enum Kind { ADD, UPDATE, REMOVE }
+
+    private final Map<String, Entry> writes = new LinkedHashMap<String, Entry>();
+    private final Map<String, Entry> removals = new LinkedHashMap<String, Entry>();
+
+    private final int maxWrites;
+    private final int maxRemovals;
+
+
+    /**
+     * A buffered write, either a ticket to store or a removal of one.
+     */
+    static final class Entry {
+        private final String id;
+        private final Ticket ticket;
+        private final Kind kind;
+        private final int timeout;
+        private final long expiresAt;
+
+        /**
+         * @param id the ticket id.
+         * @param ticket the ticket, or null if the entry records a removal.
+         * @param kind the kind of write.
+         * @param timeout the time to live in seconds, zero or less for no expiry.
+         */
+        Entry(final String id, final Ticket ticket, final Kind kind, final int timeout) {
+            this.id = id;
+            this.ticket = ticket;
+            this.kind = kind;
+            this.timeout = timeout;
+            this.expiresAt = timeout > 0
+                    ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout)
+                    : Long.MAX_VALUE;
+        }
+
+        /**
+         * @return the ticket id.
+         */
+        String id() {
+            return id;
+        }
+
+        /**
+         * @return the ticket, or null if the entry records a removal.
+         */
+        Ticket ticket() {
+            return ticket;
+        }
+
+        /**
+         * @return the kind of write.
+         */
+        Kind kind() {
+            return kind;
+        }
+
+        /**
+         * @return true if the entry records a removal.
+         */
+        boolean isRemoval() {
+            return kind == Kind.REMOVE;
+        }
+
+        /**
+         * @return true if the time to live of the entry has passed.
+         */
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        /**
+         * @return the remaining time to live in seconds, at least one, or zero if the entry never expires.
+         */
+        int remainingTimeout() {
+            if (timeout <= 0) {
+                return 0;
+            }
+            return (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(expiresAt - System.currentTimeMillis()));
+        }
+    }
+
+
+    /**
+     * @param maxWrites the maximum number of ticket writes to keep.
+     * @param maxRemovals the maximum number of ticket removals to keep.
+     */
+    LocalTicketBuffer(final int maxWrites, final int maxRemovals) {
+        this.maxWrites = maxWrites;
+        this.maxRemovals = maxRemovals;
+    }
+
+
+    /**
+     * Buffer a ticket to be stored. A ticket added to the buffer remains an
+     * addition when it is updated before it has been replayed.
+     *
+     * @param ticket the ticket.
+     * @param kind whether the ticket is added or updated.
+     * @param timeout the time to live in seconds, zero or less for no expiry.
+     * @return false if the buffer is full.
+     */
+    synchronized boolean put(final Ticket ticket, final Kind kind, final int timeout) {
+        final Entry previous = writes.get(ticket.getId());
+        final Kind actual = previous != null && previous.kind() == Kind.ADD ? Kind.ADD : kind;
+        return store(new Entry(ticket.getId(), ticket, actual, timeout));
+    }
+
+
+    /**
+     * Buffer a removal of a ticket.
+     *
+     * @param ticketId the ticket id.
+     * @param timeout the time to remember the removal in seconds, zero or less for no expiry.
+     * @return false if the buffer is full.
+     */
+    synchronized boolean remove(final String ticketId, final int timeout) {
+        return store(new Entry(ticketId, null, Kind.REMOVE, timeout));
+    }
+
+
+    /**
+     * Store an entry, replacing any previous entry for the same ticket.
+     *
+     * @param entry the entry to store.
+     * @return false if there is no room for the entry.
+     */
+    private boolean store(final Entry entry) {
+        final Map<String, Entry> target = entry.isRemoval() ? removals : writes;
+        final int max = entry.isRemoval() ? maxRemovals : maxWrites;
+        if (!target.containsKey(entry.id()) && target.size() >= max) {
+            purge(target);
+            if (target.size() >= max) {
+                return false;
+            }
+        }
+        writes.remove(entry.id());
+        removals.remove(entry.id());
+        target.put(entry.id(), entry);
+        return true;
+    }
+
+
+    /**
+     * Drop expired entries.
+     *
+     * @param map the entries to purge.
+     */
+    private static void purge(final Map<String, Entry> map) {
+        final Iterator<Entry> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired()) {
+                iterator.remove();
+            }
+        }
+    }
+
+
+    /**
+     * @param ticketId the ticket id.
+     * @return the live entry for the ticket, or null if there is none.
+     */
+    synchronized Entry get(final String ticketId) {
+        Entry entry = writes.get(ticketId);
+        if (entry == null) {
+            entry = removals.get(ticketId);
+        }
+        if (entry != null && entry.isExpired()) {
+            writes.remove(ticketId);
+            removals.remove(ticketId);
+            return null;
+        }
+        return entry;
+    }
+
+
+    /**
+     * @param ticketId the ticket id.
+     * @return true if there is a buffered entry for the ticket.
+     */
+    synchronized boolean contains(final String ticketId) {
+        return get(ticketId) != null;
+    }
+
+
+    /**
+     * Remove an entry after it has been replayed, unless it has been
+     * replaced by a newer one in the meantime.
+     *
+     * @param entry the replayed entry.
+     */
+    synchronized void discard(final Entry entry) {
+        final Map<String, Entry> source = entry.isRemoval() ? removals : writes;
+        if (source.get(entry.id()) == entry) {
+            source.remove(entry.id());
+        }
+    }
+
+
+    /**
+     * Collect up to a number of the oldest live entries, removals first,
+     * purging expired ones.
+     *
+     * @param max the maximum number of entries to return.
+     * @return the oldest entries in the buffer.
+     */
+    synchronized List<Entry> oldest(final int max) {
+        final List<Entry> batch = new ArrayList<Entry>(Math.min(max, writes.size() + removals.size()));
+        collect(removals, batch, max);
+        collect(writes, batch, max);
+        return batch;
+    }
+
+
+    /**
+     * Add live entries to a batch until it is full, purging expired ones.
+     *
+     * @param map the entries to collect from.
+     * @param batch the batch to add to.
+     * @param max the maximum size of the batch.
+     */
+    private static void collect(final Map<String, Entry> map, final List<Entry> batch, final int max) {
+        final Iterator<Entry> iterator = map.values().iterator();
+        while (iterator.hasNext() && batch.size() < max) {
+            final Entry entry = iterator.next();
+            if (entry.isExpired()) {
+                iterator.remove();
+            } else {
+                batch.add(entry);
+            }
+        }
+    }
+
+
+    /**
+     * @return true if there are no buffered entries.
+     */
+    synchronized boolean isEmpty() {
+        return writes.isEmpty() && removals.isEmpty();
+    }
+}
@@ -0,0 +1,157 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import se.kth.infosys.login.couchbase.CouchbaseCircuitBreaker.State;
+
+public class CouchbaseCircuitBreakerTests {
+    private CouchbaseCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new CouchbaseCircuitBreaker();
+        breaker.setWindowSize(10);
+        breaker.setMinimumCalls(4);
+        breaker.setFailureRateThreshold(50);
+        breaker.setSlowCallThreshold(100);
+        breaker.setRetryInterval(60);
+    }
+
+    @Test
+    public void staysClosedBelowMinimumCalls() {
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(State.CLOSED, breaker.state());
+        assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void opensWhenEveryOtherCallFails() {
+        breaker.onSuccess(0);
+        breaker.onFailure();
+        breaker.onSuccess(0);
+        assertEquals(State.CLOSED, breaker.state());
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void staysClosedBelowFailureRate() {
+        for (int i = 0; i < 3; i++) {
+            breaker.onSuccess(0);
+            breaker.onSuccess(0);
+            breaker.onFailure();
+        }
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void countsSlowCallsAsFailures() {
+        breaker.onSuccess(0);
+        breaker.onSuccess(101);
+        breaker.onSuccess(0);
+        breaker.onSuccess(101);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void forgetsOutcomesOutsideWindow() {
+        breaker.setWindowSize(4);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onFailure();
+        for (int i = 0; i < 4; i++) {
+            breaker.onSuccess(0);
+        }
+        breaker.onFailure();
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void letsSingleProbeThroughAfterRetryInterval() {
+        breaker.setRetryInterval(0);
+        open();
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void closesOnSuccessfulProbe() {
+        breaker.setRetryInterval(0);
+        open();
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(0);
+        assertEquals(State.CLOSED, breaker.state());
+        breaker.onFailure();
+        assertEquals(State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void reopensOnFailedProbe() {
+        breaker.setRetryInterval(0);
+        open();
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void reopensOnSlowProbe() {
+        breaker.setRetryInterval(0);
+        open();
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(101);
+        assertEquals(State.OPEN, breaker.state());
+    }
+
+    @Test
+    public void ignoresSuccessWhileOpen() {
+        open();
+        breaker.onSuccess(0);
+        assertEquals(State.OPEN, breaker.state());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void ignoresFailureWhileOpen() throws Exception {
+        breaker.setRetryInterval(1);
+        open();
+        Thread.sleep(600);
+        breaker.onFailure();
+        Thread.sleep(600);
+        assertTrue(breaker.allowRequest());
+    }
+
+    private void open() {
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(State.OPEN, breaker.state());
+    }
+}
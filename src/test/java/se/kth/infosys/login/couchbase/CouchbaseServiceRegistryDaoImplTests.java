@@ -0,0 +1,180 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.cas.services.RegexRegisteredService;
+import org.jasig.cas.services.RegisteredService;
+import org.jasig.cas.util.JsonSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.couchbase.client.java.document.JsonLongDocument;
+
+public class CouchbaseServiceRegistryDaoImplTests {
+    private MockBucket bucket;
+    private CouchbaseServiceRegistryDaoImpl dao;
+
+    @Before
+    public void setUp() {
+        bucket = new MockBucket();
+        dao = new CouchbaseServiceRegistryDaoImpl(serializer());
+        dao.setCouchbase(bucket.factory());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dao.destroy();
+    }
+
+    @Test
+    public void allocatesIdsFromAbsentCounter() {
+        final List<RegisteredService> services = services(3);
+        assertEquals(3, dao.saveAll(services).size());
+        assertEquals(Arrays.asList(0L, 1L, 2L), ids(services));
+        assertEquals(2L, bucket.content("LAST_ID"));
+        assertEquals(3L, dao.save(services(1).get(0)).getId());
+    }
+
+    @Test
+    public void allocatesIdsFromExistingCounter() {
+        bucket.documents().put("LAST_ID", JsonLongDocument.create("LAST_ID", 5L));
+        final List<RegisteredService> services = services(2);
+        dao.saveAll(services);
+        assertEquals(Arrays.asList(6L, 7L), ids(services));
+        assertEquals(7L, bucket.content("LAST_ID"));
+        assertEquals(1, count("counter:LAST_ID"));
+    }
+
+    @Test
+    public void keepsIdsWhenRetryingAfterPartialFailure() {
+        final List<RegisteredService> services = services(3);
+        bucket.fail("upsert:1");
+        final List<RegisteredService> saved = dao.saveAll(services);
+        assertEquals(2, saved.size());
+        assertSame(services.get(0), saved.get(0));
+        assertSame(services.get(2), saved.get(1));
+
+        assertEquals(3, dao.saveAll(services).size());
+        assertEquals(Arrays.asList(0L, 1L, 2L), ids(services));
+        assertEquals(1, count("counter:LAST_ID"));
+    }
+
+    @Test
+    public void reportsFailurePerServiceWithSharedId() {
+        final List<RegisteredService> services = services(2);
+        ((RegexRegisteredService) services.get(0)).setId(7);
+        ((RegexRegisteredService) services.get(1)).setId(7);
+        bucket.fail("upsert:7");
+        assertEquals(1, dao.saveAll(services).size());
+    }
+
+    @Test
+    public void retriesOnlyFailedPreConfiguredServices() {
+        bucket.setUnavailable(true);
+        dao.setRegisteredServices(services(3));
+        await("counter:LAST_ID");
+        bucket.setUnavailable(false);
+
+        bucket.fail("upsert:4");
+        dao.run();
+        assertEquals(1, count("upsert:3"));
+        assertEquals(1, count("upsert:4"));
+        assertEquals(1, count("upsert:5"));
+
+        dao.run();
+        assertEquals(1, count("upsert:3"));
+        assertEquals(2, count("upsert:4"));
+        assertEquals(1, count("upsert:5"));
+        assertEquals(2, count("counter:LAST_ID"));
+    }
+
+    private int count(final String operation) {
+        int count = 0;
+        for (final String o : bucket.operations()) {
+            if (o.equals(operation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void await(final String operation) {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (count(operation) == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Operation " + operation + " not made in time");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static List<RegisteredService> services(final int count) {
+        final List<RegisteredService> services = new ArrayList<RegisteredService>();
+        for (int i = 0; i < count; i++) {
+            final RegexRegisteredService service = new RegexRegisteredService();
+            service.setServiceId("https://service" + i + ".example.com/.*");
+            services.add(service);
+        }
+        return services;
+    }
+
+    private static List<Long> ids(final List<RegisteredService> services) {
+        final List<Long> ids = new ArrayList<Long>();
+        for (final RegisteredService service : services) {
+            ids.add(service.getId());
+        }
+        return ids;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonSerializer<RegisteredService> serializer() {
+        return (JsonSerializer<RegisteredService>) Proxy.newProxyInstance(
+                JsonSerializer.class.getClassLoader(),
+                new Class<?>[] {JsonSerializer.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args)
+                            throws IOException {
+                        if ("toJson".equals(method.getName()) && args[0] instanceof Writer) {
+                            ((Writer) args[0]).write("{}");
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,284 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+
+import org.jasig.cas.ticket.ServiceTicket;
+import org.jasig.cas.ticket.Ticket;
+import org.jasig.cas.ticket.TicketGrantingTicket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CouchbaseTicketRegistryTests {
+    private MockBucket bucket;
+    private CouchbaseTicketRegistry registry;
+
+    @Before
+    public void setUp() {
+        bucket = new MockBucket();
+        registry = new CouchbaseTicketRegistry();
+        registry.setCouchbase(bucket.factory());
+        registry.setTgtTimeout(600);
+        registry.setStTimeout(10);
+        registry.setMinimumCalls(1);
+        registry.setFailureRateThreshold(50);
+        registry.setRetryInterval(60);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bucket.unblock();
+        registry.destroy();
+    }
+
+    @Test
+    public void storesTicketInCouchbase() {
+        registry.initialize();
+        final Ticket ticket = ticket("TGT-1");
+        registry.addTicket(ticket);
+        assertSame(ticket, bucket.content("TGT-1"));
+        assertEquals("TGT-1", registry.getTicket("TGT-1").getId());
+        assertTrue(registry.deleteTicket("TGT-1"));
+        assertNull(bucket.content("TGT-1"));
+    }
+
+    @Test
+    public void buffersTicketWhileCouchbaseUnavailable() {
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        assertEquals("TGT-1", registry.getTicket("TGT-1").getId());
+        assertEquals(Arrays.asList("upsert:TGT-1"), bucket.operations());
+    }
+
+    @Test
+    public void doesNotCallCouchbaseWhileCircuitOpen() {
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        bucket.setUnavailable(false);
+        assertNull(registry.getTicket("TGT-2"));
+        registry.addTicket(ticket("TGT-3"));
+        assertTrue(registry.deleteTicket("TGT-4"));
+        assertEquals(Arrays.asList("upsert:TGT-1"), bucket.operations());
+    }
+
+    @Test
+    public void letsSingleProbeThrough() throws Exception {
+        registry.setRetryInterval(0);
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        bucket.setUnavailable(false);
+        bucket.block("get");
+        final Thread probe = new Thread() {
+            @Override
+            public void run() {
+                registry.getTicket("TGT-2");
+            }
+        };
+        probe.start();
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return bucket.operations().contains("get:TGT-2");
+            }
+        });
+        assertNull(registry.getTicket("TGT-3"));
+        assertFalse(bucket.operations().contains("get:TGT-3"));
+        bucket.unblock();
+        probe.join();
+    }
+
+    @Test
+    public void servesBufferedTicketAndBuffersItsWritesDuringReplay() throws Exception {
+        registry.setRetryInterval(0);
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        bucket.setUnavailable(false);
+
+        bucket.block("insert");
+        assertNull(registry.getTicket("TGT-2"));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return bucket.operations().contains("insert:TGT-1");
+            }
+        });
+
+        assertNotNull(registry.getTicket("TGT-1"));
+        final Ticket updated = ticket("TGT-1");
+        registry.updateTicket(updated);
+        assertFalse(bucket.operations().contains("get:TGT-1"));
+        assertEquals(1, count("upsert:TGT-1"));
+
+        bucket.unblock();
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return bucket.content("TGT-1") == updated;
+            }
+        });
+        assertTrue(bucket.operations().contains("replace:TGT-1"));
+    }
+
+    @Test
+    public void replaysBufferedWrites() {
+        registry.setRetryInterval(0);
+        registry.initialize();
+        registry.addTicket(ticket("TGT-2"));
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        assertTrue(registry.deleteTicket("TGT-2"));
+        assertNull(registry.getTicket("TGT-2"));
+        bucket.setUnavailable(false);
+        assertNull(registry.getTicket("ST-1"));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return bucket.content("TGT-1") != null && bucket.content("TGT-2") == null;
+            }
+        });
+        assertTrue(bucket.operations().contains("insert:TGT-1"));
+        assertTrue(bucket.operations().contains("remove:TGT-2"));
+    }
+
+    @Test
+    public void doesNotResurrectTicketRemovedElsewhere() {
+        registry.setRetryInterval(0);
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.updateTicket(ticket("TGT-1"));
+        bucket.setUnavailable(false);
+        assertNull(registry.getTicket("TGT-2"));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                registry.getTicket("TGT-1");
+                return bucket.operations().contains("get:TGT-1");
+            }
+        });
+        assertTrue(bucket.operations().contains("replace:TGT-1"));
+        assertNull(bucket.content("TGT-1"));
+        assertNull(registry.getTicket("TGT-1"));
+    }
+
+    @Test
+    public void failsWhenBufferFull() {
+        registry.setBufferSize(1);
+        registry.initialize();
+        bucket.setUnavailable(true);
+        registry.addTicket(ticket("TGT-1"));
+        try {
+            registry.addTicket(ticket("TGT-2"));
+            fail("Expected full buffer to fail");
+        } catch (final IllegalStateException e) {
+            assertNull(registry.getTicket("TGT-2"));
+        }
+    }
+
+    @Test
+    public void reportsRemovalNotBufferedWhenFull() {
+        registry.setRemovalBufferSize(1);
+        registry.initialize();
+        bucket.setUnavailable(true);
+        assertTrue(registry.deleteTicket("TGT-1"));
+        assertFalse(registry.deleteTicket("TGT-2"));
+    }
+
+    @Test
+    public void doesNotCountUnsupportedTicketAsFailure() {
+        registry.initialize();
+        registry.addTicket((Ticket) Proxy.newProxyInstance(
+                Ticket.class.getClassLoader(), new Class<?>[] {Ticket.class}, new TicketHandler("OTHER-1")));
+        registry.addTicket(ticket("TGT-1"));
+        assertEquals(Arrays.asList("upsert:TGT-1"), bucket.operations());
+    }
+
+    private int count(final String operation) {
+        int count = 0;
+        for (final String o : bucket.operations()) {
+            if (o.equals(operation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void await(final Condition condition) {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Condition not met in time");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Ticket ticket(final String id) {
+        final Class<?> type = id.startsWith("ST-") ? ServiceTicket.class : TicketGrantingTicket.class;
+        return (Ticket) Proxy.newProxyInstance(
+                Ticket.class.getClassLoader(), new Class<?>[] {type}, new TicketHandler(id));
+    }
+
+    private static final class TicketHandler implements InvocationHandler {
+        private final String id;
+
+        TicketHandler(final String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+            switch (method.getName()) {
+            case "getId":
+            case "toString":
+                return id;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        }
+    }
+}
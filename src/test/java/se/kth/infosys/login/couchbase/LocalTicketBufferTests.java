@@ -0,0 +1,182 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import org.jasig.cas.ticket.Ticket;
+import org.junit.Test;
+
+import se.kth.infosys.login.couchbase.LocalTicketBuffer.Kind;
+
+public class LocalTicketBufferTests {
+
+    @Test
+    public void servesBufferedTicket() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        final Ticket ticket = ticket("TGT-1");
+        buffer.put(ticket, Kind.ADD, 60);
+        assertSame(ticket, buffer.get("TGT-1").ticket());
+        assertFalse(buffer.get("TGT-1").isRemoval());
+        assertNull(buffer.get("TGT-2"));
+    }
+
+    @Test
+    public void recordsRemoval() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        buffer.remove("TGT-1", 60);
+        assertTrue(buffer.get("TGT-1").isRemoval());
+    }
+
+    @Test
+    public void keepsTicketWithoutTimeout() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 0);
+        assertTrue(buffer.contains("TGT-1"));
+        assertEquals(0, buffer.get("TGT-1").remainingTimeout());
+        assertEquals(1, buffer.oldest(10).size());
+    }
+
+    @Test
+    public void expiresTicket() throws Exception {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("ST-1"), Kind.ADD, 1);
+        assertTrue(buffer.contains("ST-1"));
+        Thread.sleep(1100);
+        assertFalse(buffer.contains("ST-1"));
+        assertTrue(buffer.oldest(10).isEmpty());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void rejectsTicketWhenFull() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(2, 2);
+        assertTrue(buffer.put(ticket("TGT-1"), Kind.ADD, 60));
+        assertTrue(buffer.put(ticket("TGT-2"), Kind.ADD, 60));
+        assertFalse(buffer.put(ticket("TGT-3"), Kind.ADD, 60));
+        assertTrue(buffer.contains("TGT-1"));
+        assertTrue(buffer.contains("TGT-2"));
+        assertFalse(buffer.contains("TGT-3"));
+        assertTrue(buffer.put(ticket("TGT-1"), Kind.UPDATE, 60));
+    }
+
+    @Test
+    public void makesRoomByDroppingExpiredEntries() throws Exception {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(1, 1);
+        buffer.put(ticket("ST-1"), Kind.ADD, 1);
+        buffer.remove("ST-2", 1);
+        Thread.sleep(1100);
+        assertTrue(buffer.put(ticket("TGT-3"), Kind.ADD, 60));
+        assertTrue(buffer.remove("TGT-4", 60));
+    }
+
+    @Test
+    public void boundsRemovalsSeparately() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(2, 1);
+        assertTrue(buffer.remove("TGT-1", 60));
+        assertFalse(buffer.remove("TGT-2", 60));
+        assertTrue(buffer.put(ticket("TGT-3"), Kind.ADD, 60));
+        assertTrue(buffer.put(ticket("TGT-4"), Kind.ADD, 60));
+        assertTrue(buffer.get("TGT-1").isRemoval());
+        assertNull(buffer.get("TGT-2"));
+    }
+
+    @Test
+    public void keepsTicketWhenRemovalRejected() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(2, 1);
+        buffer.remove("TGT-1", 60);
+        buffer.put(ticket("TGT-2"), Kind.ADD, 60);
+        assertFalse(buffer.remove("TGT-2", 60));
+        assertFalse(buffer.get("TGT-2").isRemoval());
+    }
+
+    @Test
+    public void keepsAdditionWhenUpdated() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        buffer.put(ticket("TGT-1"), Kind.UPDATE, 60);
+        assertEquals(Kind.ADD, buffer.get("TGT-1").kind());
+        buffer.put(ticket("TGT-2"), Kind.UPDATE, 60);
+        assertEquals(Kind.UPDATE, buffer.get("TGT-2").kind());
+    }
+
+    @Test
+    public void returnsOldestEntriesInOrder() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        buffer.put(ticket("TGT-2"), Kind.ADD, 60);
+        buffer.put(ticket("TGT-3"), Kind.ADD, 60);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        buffer.remove("TGT-4", 60);
+        final List<LocalTicketBuffer.Entry> batch = buffer.oldest(3);
+        assertEquals(3, batch.size());
+        assertEquals("TGT-4", batch.get(0).id());
+        assertEquals("TGT-2", batch.get(1).id());
+        assertEquals("TGT-3", batch.get(2).id());
+    }
+
+    @Test
+    public void discardsReplayedEntry() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        buffer.discard(buffer.get("TGT-1"));
+        assertFalse(buffer.contains("TGT-1"));
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void discardKeepsNewerEntry() {
+        final LocalTicketBuffer buffer = new LocalTicketBuffer(10, 10);
+        buffer.put(ticket("TGT-1"), Kind.ADD, 60);
+        final LocalTicketBuffer.Entry replayed = buffer.get("TGT-1");
+        buffer.remove("TGT-1", 60);
+        buffer.discard(replayed);
+        assertNotNull(buffer.get("TGT-1"));
+        assertTrue(buffer.get("TGT-1").isRemoval());
+    }
+
+    private static Ticket ticket(final String id) {
+        return (Ticket) Proxy.newProxyInstance(
+                Ticket.class.getClassLoader(),
+                new Class<?>[] {Ticket.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        if ("getId".equals(method.getName())) {
+                            return id;
+                        }
+                        if ("toString".equals(method.getName())) {
+                            return id;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,202 @@
+package se.kth.infosys.login.couchbase;
+
+/*
+ * Copyright (C) 2015 KTH, Kungliga tekniska hogskolan, http://www.kth.se
+ *
+ * This file is part of cas-server-integration-couchbase.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Func0;
+
+import com.couchbase.client.java.AsyncBucket;
+import com.couchbase.client.java.Bucket;
+import com.couchbase.client.java.document.Document;
+import com.couchbase.client.java.document.JsonLongDocument;
+import com.couchbase.client.java.error.DocumentAlreadyExistsException;
+import com.couchbase.client.java.error.DocumentDoesNotExistException;
+
+/**
+ * An in memory stand in for a Couchbase bucket, implementing the parts of
+ * the synchronous and asynchronous bucket API used by the registries.
+ * Operations are recorded as "operation:id" and may be made to fail or
+ * to block until released.
+ */
+public class MockBucket {
+    private final Map<String, Document<?>> documents = new ConcurrentHashMap<String, Document<?>>();
+    private final List<String> operations = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+
+    private volatile boolean unavailable;
+    private volatile String blocked;
+    private volatile CountDownLatch gate;
+
+    private final AsyncBucket async = (AsyncBucket) Proxy.newProxyInstance(
+            AsyncBucket.class.getClassLoader(),
+            new Class<?>[] {AsyncBucket.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    return Observable.defer(new Func0<Observable<Object>>() {
+                        @Override
+                        public Observable<Object> call() {
+                            try {
+                                return Observable.just(execute(method.getName(), args));
+                            } catch (final RuntimeException e) {
+                                return Observable.error(e);
+                            }
+                        }
+                    });
+                }
+            });
+
+    private final Bucket bucket = (Bucket) Proxy.newProxyInstance(
+            Bucket.class.getClassLoader(),
+            new Class<?>[] {Bucket.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                    if ("async".equals(method.getName())) {
+                        return async;
+                    }
+                    return execute(method.getName(), args);
+                }
+            });
+
+    private final CouchbaseClientFactory factory = new CouchbaseClientFactory() {
+        @Override
+        public Bucket bucket() {
+            return bucket;
+        }
+
+        @Override
+        public void initialize() {}
+    };
+
+    public CouchbaseClientFactory factory() {
+        return factory;
+    }
+
+    public Map<String, Document<?>> documents() {
+        return documents;
+    }
+
+    public Object content(final String id) {
+        final Document<?> document = documents.get(id);
+        return document == null ? null : document.content();
+    }
+
+    public List<String> operations() {
+        synchronized (operations) {
+            return new ArrayList<String>(operations);
+        }
+    }
+
+    /**
+     * @param unavailable if true all operations fail.
+     */
+    public void setUnavailable(final boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
+    /**
+     * @param operation an operation, "operation:id", to fail.
+     */
+    public void fail(final String operation) {
+        failing.add(operation);
+    }
+
+    /**
+     * Make operations of a kind block until unblocked.
+     *
+     * @param operation the name of the operation, e.g. "insert".
+     */
+    public void block(final String operation) {
+        gate = new CountDownLatch(1);
+        blocked = operation;
+    }
+
+    public void unblock() {
+        blocked = null;
+        if (gate != null) {
+            gate.countDown();
+        }
+    }
+
+    private Object execute(final String name, final Object[] args) {
+        final String id = args[0] instanceof String ? (String) args[0] : ((Document<?>) args[0]).id();
+        operations.add(name + ":" + id);
+        final CountDownLatch latch = gate;
+        if (name.equals(blocked) && latch != null) {
+            try {
+                latch.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (unavailable || failing.remove(name + ":" + id)) {
+            throw new RuntimeException("Couchbase unavailable");
+        }
+        switch (name) {
+        case "get":
+            return documents.get(id);
+        case "upsert":
+            documents.put(id, (Document<?>) args[0]);
+            return args[0];
+        case "insert":
+            if (documents.containsKey(id)) {
+                throw new DocumentAlreadyExistsException();
+            }
+            documents.put(id, (Document<?>) args[0]);
+            return args[0];
+        case "replace":
+            if (!documents.containsKey(id)) {
+                throw new DocumentDoesNotExistException();
+            }
+            documents.put(id, (Document<?>) args[0]);
+            return args[0];
+        case "remove":
+            if (documents.remove(id) == null) {
+                throw new DocumentDoesNotExistException();
+            }
+            return null;
+        case "counter":
+            return counter(id, (Long) args[1], (Long) args[2]);
+        default:
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private synchronized JsonLongDocument counter(final String id, final long delta, final long initial) {
+        final Document<?> current = documents.get(id);
+        final long value = current == null ? initial : (Long) current.content() + delta;
+        final JsonLongDocument document = JsonLongDocument.create(id, value);
+        documents.put(id, document);
+        return document;
+    }
+}